@@ -4,6 +4,7 @@ import android.app.Application;
 
 import com.stetel.floppy.Floppy;
 import com.stetel.floppy.Loader;
+import com.stetel.floppy.Migrator;
 
 public class MyApplication extends Application {
     private static final int FLOPPY_DRIVE_VERSION = 2;
@@ -11,16 +12,19 @@ public class MyApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        // migrated the first time "setup" is read, not during the upgrade
+        Floppy.insert(this).addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                return floppy.readBoolean(name) ? "account" : "none";
+            }
+        });
         Floppy.driveUpgrade(this, FLOPPY_DRIVE_VERSION, new Loader() {
             @Override
             public void onUpgrade(Floppy floppy, int previousVersion, int currentVersion) {
                 if (previousVersion < 1) {
                     floppy.format();
                 }
-                if (previousVersion < 2) {
-                    boolean setupBool = floppy.readBoolean("setup");
-                    floppy.write("setup", setupBool ? "account" : "none");
-                }
             }
         });
     }
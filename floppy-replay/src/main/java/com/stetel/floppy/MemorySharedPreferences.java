@@ -0,0 +1,335 @@
+package com.stetel.floppy;
+
+import android.content.SharedPreferences;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * SharedPreferences stand-in for a plain JVM, modeled on the Android implementation.<br/>
+ * <br/>
+ * Reads and commits share a single lock. Committing an editor copies the whole map when a previous
+ * write is still in flight, then apply() queues the rewrite of the whole file on a single background
+ * thread, as QueuedWork does. The file is serialized to XML in memory, without touching the disk,
+ * so the CPU cost of the rewrite is measured but the disk latency is not.<br/>
+ * <br/>
+ * <i>Note: change listeners are accepted but never notified.</i>
+ */
+class MemorySharedPreferences implements SharedPreferences {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Object lock = new Object();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "shared-prefs-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private Map<String, Object> map = new HashMap<>();
+    private int diskWritesInFlight;
+    private long fileWrites;
+    private long bytesWritten;
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (lock) {
+            return new HashMap<>(map);
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        synchronized (lock) {
+            String value = (String) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        synchronized (lock) {
+            Set<String> values = (Set<String>) map.get(key);
+            return values != null ? values : defValues;
+        }
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        synchronized (lock) {
+            Integer value = (Integer) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        synchronized (lock) {
+            Long value = (Long) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        synchronized (lock) {
+            Float value = (Float) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        synchronized (lock) {
+            Boolean value = (Boolean) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (lock) {
+            return map.containsKey(key);
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        // listeners are not supported
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        // listeners are not supported
+    }
+
+    /**
+     * Wait for all the file writes queued so far.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitWrites() throws InterruptedException {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // marks the end of the queue
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return Number of times the whole file was rewritten
+     */
+    long getFileWrites() {
+        synchronized (lock) {
+            return fileWrites;
+        }
+    }
+
+    /**
+     * @return Total size of the rewritten files, in bytes
+     */
+    long getBytesWritten() {
+        synchronized (lock) {
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Serialize the map like the XML file written by Android.
+     *
+     * @param snapshot map to write
+     */
+    private void writeToFile(Map<String, Object> snapshot) {
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            Object value = entry.getValue();
+            String tag = value instanceof String ? "string" : value instanceof Boolean ? "boolean"
+                    : value instanceof Integer ? "int" : value instanceof Long ? "long"
+                    : value instanceof Float ? "float" : "set";
+            xml.append("    <").append(tag).append(" name=\"");
+            escape(xml, entry.getKey());
+            if (value instanceof String) {
+                xml.append("\">");
+                escape(xml, (String) value);
+                xml.append("</string>\n");
+            } else if (value instanceof Set) {
+                xml.append("\">\n");
+                for (Object item : (Set<?>) value) {
+                    xml.append("        <string>");
+                    escape(xml, String.valueOf(item));
+                    xml.append("</string>\n");
+                }
+                xml.append("    </set>\n");
+            } else {
+                xml.append("\" value=\"").append(value).append("\" />\n");
+            }
+        }
+        xml.append("</map>\n");
+        int size = xml.toString().getBytes(UTF_8).length;
+        synchronized (lock) {
+            diskWritesInFlight--;
+            fileWrites++;
+            bytesWritten += size;
+        }
+    }
+
+    private static void escape(StringBuilder xml, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+    }
+
+    /**
+     * Editor which collects the changes and applies them to the map on commit.
+     */
+    private class MemoryEditor implements Editor {
+        private final Map<String, Object> modified = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            synchronized (this) {
+                modified.put(key, value);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            synchronized (this) {
+                modified.put(key, values == null ? null : new HashSet<>(values));
+                return this;
+            }
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            synchronized (this) {
+                modified.put(key, value);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            synchronized (this) {
+                modified.put(key, value);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            synchronized (this) {
+                modified.put(key, value);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            synchronized (this) {
+                modified.put(key, value);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor remove(String key) {
+            synchronized (this) {
+                modified.put(key, this);
+                return this;
+            }
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                clear = true;
+                return this;
+            }
+        }
+
+        @Override
+        public boolean commit() {
+            writeToFile(commitToMemory());
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            final Map<String, Object> snapshot = commitToMemory();
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeToFile(snapshot);
+                }
+            });
+        }
+
+        /**
+         * Apply the changes to the map.
+         *
+         * @return Map to write to the file
+         */
+        private Map<String, Object> commitToMemory() {
+            synchronized (lock) {
+                if (diskWritesInFlight > 0) {
+                    map = new HashMap<>(map);
+                }
+                diskWritesInFlight++;
+                synchronized (this) {
+                    if (clear) {
+                        map.clear();
+                        clear = false;
+                    }
+                    for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                        Object value = entry.getValue();
+                        if (value == this || value == null) {
+                            map.remove(entry.getKey());
+                        } else {
+                            map.put(entry.getKey(), value);
+                        }
+                    }
+                    modified.clear();
+                }
+                return map;
+            }
+        }
+    }
+}
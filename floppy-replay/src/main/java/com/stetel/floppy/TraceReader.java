@@ -0,0 +1,137 @@
+package com.stetel.floppy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of the trace files written by Tracer.
+ */
+class TraceReader {
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * Read the whole trace in memory.
+     *
+     * @param file trace file written by Tracer
+     * @return Records in the order they were written
+     * @throws IOException if the file cannot be read or it is not a valid trace
+     */
+    static List<Record> read(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return new TraceReader().read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read all the records of the stream.
+     *
+     * @param inputStream stream containing a trace
+     * @return Records in the order they were written
+     * @throws IOException if the stream cannot be read or it is not a valid trace
+     */
+    List<Record> read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        List<Record> records = new ArrayList<>();
+        try {
+            if (in.readInt() != Tracer.MAGIC || in.readByte() != Tracer.FORMAT_VERSION) {
+                throw new IOException("Not a Floppy trace");
+            }
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+                long sincePreviousNanos = readVarLong(in);
+                long durationNanos = readVarLong(in);
+                int count;
+                switch (op) {
+                    case Tracer.OP_READ:
+                    case Tracer.OP_READ_OBJECT:
+                        count = 1;
+                        break;
+                    case Tracer.OP_WRITE:
+                    case Tracer.OP_DELETE:
+                        count = (int) readVarLong(in);
+                        break;
+                    case Tracer.OP_FORMAT:
+                        count = 0;
+                        break;
+                    default:
+                        throw new IOException("Unknown operation " + op + " at record " + records.size());
+                }
+                Record record = new Record((byte) op, sincePreviousNanos, durationNanos, count);
+                for (int i = 0; i < count; i++) {
+                    record.names[i] = readName(in, records.size());
+                    byte kind = in.readByte();
+                    record.unchanged[i] = (kind & Tracer.UNCHANGED) != 0;
+                    record.kinds[i] = (byte) (kind & ~Tracer.UNCHANGED);
+                    if (record.kinds[i] < Tracer.KIND_NULL || record.kinds[i] > Tracer.KIND_OBJECT) {
+                        throw new IOException("Unknown kind " + record.kinds[i] + " at record " + records.size());
+                    }
+                    record.sizes[i] = (int) (readVarLong(in) - 1);
+                }
+                records.add(record);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated trace at record " + records.size(), e);
+        }
+        return records;
+    }
+
+    private String readName(DataInputStream in, int recordIndex) throws IOException {
+        int index = (int) readVarLong(in);
+        if (index == names.size()) {
+            names.add(in.readUTF());
+        } else if (index > names.size()) {
+            throw new IOException("Invalid name index at record " + recordIndex);
+        }
+        return names.get(index);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Operation recorded in the trace.<br/>
+     * Reads have a single entry, writes and deletes one entry per var of the batch and formats none.
+     * Written vars whose value was equal to the saved one are marked as unchanged.
+     */
+    static class Record {
+        final byte op;
+        final long sincePreviousNanos;
+        final long durationNanos;
+        final String[] names;
+        final byte[] kinds;
+        final int[] sizes;
+        final boolean[] unchanged;
+
+        Record(byte op, long sincePreviousNanos, long durationNanos, int count) {
+            this.op = op;
+            this.sincePreviousNanos = sincePreviousNanos;
+            this.durationNanos = durationNanos;
+            this.names = new String[count];
+            this.kinds = new byte[count];
+            this.sizes = new int[count];
+            this.unchanged = new boolean[count];
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.stetel.floppy;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator which replays a trace recorded by Tracer on a plain JVM.<br/>
+ * <pre><code>./gradlew :floppy-replay:run --args="trace.flpt [threads] [iterations]"</code></pre>
+ * Every operation is executed through the Floppy methods, backed by MemorySharedPreferences, as
+ * fast as possible. Values are generated with the recorded kind and size and change at every
+ * write, except for the vars recorded as unchanged, which get again the last value written by the
+ * same thread so that the write is suppressed as in the recorded session. Writes of the same batch
+ * are replayed with a single write() call.<br/>
+ * Vars read before being written in the trace are created before every iteration, so that they
+ * are found as in the recorded session. With more than one thread, every thread replays the whole
+ * trace on the same Floppy instance.<br/>
+ * At the end it prints the throughput and the latency percentiles for every kind of operation,
+ * next to the recorded ones.
+ */
+public class TraceReplay {
+    private static final String[] OP_NAMES = {"", "read", "readObject", "write", "delete", "format"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final List<TraceReader.Record> records;
+    private final Map<String, TraceReader.Record> seeds = new HashMap<>();
+    private final AtomicLong errors = new AtomicLong();
+    private int unchangedWrites;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay <trace file> [threads] [iterations]");
+            System.exit(1);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        if (threads < 1 || iterations < 1) {
+            throw new IllegalArgumentException("threads and iterations must be greater than 0");
+        }
+        MemorySharedPreferences sharedPreferences = new MemorySharedPreferences();
+        Floppy floppy = new Floppy(sharedPreferences);
+        TraceReplay replay = new TraceReplay(TraceReader.read(new File(args[0])));
+        long start = System.nanoTime();
+        long[][] latencies = replay.run(floppy, threads, iterations);
+        long elapsed = System.nanoTime() - start;
+        sharedPreferences.awaitWrites();
+        replay.report(latencies, elapsed);
+        System.out.println(String.format(Locale.US, "Files rewritten: %d (%d KiB), suppressed writes: %d, errors: %d",
+                sharedPreferences.getFileWrites(), sharedPreferences.getBytesWritten() / 1024,
+                floppy.getSuppressedWrites(), replay.getErrors()));
+    }
+
+    /**
+     * @param records records of the trace
+     */
+    TraceReplay(List<TraceReader.Record> records) {
+        this.records = records;
+        Set<String> written = new HashSet<>();
+        for (TraceReader.Record record : records) {
+            if (record.op == Tracer.OP_READ || record.op == Tracer.OP_READ_OBJECT) {
+                if (record.sizes[0] >= 0 && !written.contains(record.names[0]) && !seeds.containsKey(record.names[0])) {
+                    seeds.put(record.names[0], record);
+                }
+            } else {
+                Collections.addAll(written, record.names);
+                for (boolean unchanged : record.unchanged) {
+                    unchangedWrites += unchanged ? 1 : 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of operations which threw an exception
+     */
+    long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Replay the trace.
+     *
+     * @param floppy instance used by all the threads
+     * @param threads number of threads replaying the trace at the same time
+     * @param iterations how many times every thread replays the trace
+     * @return Latency of every executed operation, in nanoseconds, one array per thread
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    long[][] run(final Floppy floppy, int threads, final int iterations) throws InterruptedException {
+        final long[][] latencies = new long[threads][];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    latencies[id] = replay(floppy, iterations, (long) id << 40);
+                }
+            }, "replay-" + t);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Execute the trace on the given instance.
+     *
+     * @param floppy Floppy instance
+     * @param iterations how many times the trace is executed
+     * @param sequence first number used to generate the values
+     * @return Latency of every executed operation, in nanoseconds
+     */
+    private long[] replay(Floppy floppy, int iterations, long sequence) {
+        long[] latencies = new long[records.size() * iterations];
+        Map<String, Object> written = new HashMap<>();
+        int n = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (TraceReader.Record seed : seeds.values()) {
+                Object value = value(seed.kinds[0], seed.sizes[0], sequence++);
+                floppy.write(seed.names[0], value);
+                written.put(seed.names[0], value);
+            }
+            for (TraceReader.Record record : records) {
+                Map<String, Object> namesValues = null;
+                if (record.op == Tracer.OP_WRITE || record.op == Tracer.OP_DELETE) {
+                    namesValues = new HashMap<>();
+                    for (int e = 0; e < record.names.length; e++) {
+                        String name = record.names[e];
+                        if (record.unchanged[e] && written.containsKey(name)) {
+                            namesValues.put(name, written.get(name));
+                        } else {
+                            namesValues.put(name, value(record.kinds[e], record.sizes[e], sequence++));
+                        }
+                    }
+                    written.putAll(namesValues);
+                } else if (record.op == Tracer.OP_FORMAT) {
+                    written.clear();
+                }
+                long start = System.nanoTime();
+                try {
+                    execute(floppy, record, namesValues);
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                }
+                latencies[n++] = System.nanoTime() - start;
+            }
+        }
+        return latencies;
+    }
+
+    private static void execute(Floppy floppy, TraceReader.Record record, Map<String, Object> namesValues) {
+        switch (record.op) {
+            case Tracer.OP_READ:
+                switch (record.kinds[0]) {
+                    case Tracer.KIND_BOOLEAN:
+                        floppy.readBoolean(record.names[0]);
+                        break;
+                    case Tracer.KIND_INT:
+                        floppy.readInt(record.names[0]);
+                        break;
+                    case Tracer.KIND_FLOAT:
+                        floppy.readFloat(record.names[0]);
+                        break;
+                    case Tracer.KIND_LONG:
+                        floppy.readLong(record.names[0]);
+                        break;
+                    default:
+                        floppy.readString(record.names[0]);
+                        break;
+                }
+                break;
+            case Tracer.OP_READ_OBJECT:
+                floppy.readStringList(record.names[0]);
+                break;
+            case Tracer.OP_WRITE:
+            case Tracer.OP_DELETE:
+                floppy.write(namesValues);
+                break;
+            case Tracer.OP_FORMAT:
+                floppy.format();
+                break;
+        }
+    }
+
+    /**
+     * Generate a value of the given kind and size, different for every sequence number.<br/>
+     * Objects are Lists containing a single String, whose JSON has the requested size.
+     *
+     * @param kind kind of the value
+     * @param size size of the value
+     * @param sequence number which makes the value unique
+     * @return Value to write
+     */
+    static Object value(byte kind, int size, long sequence) {
+        switch (kind) {
+            case Tracer.KIND_BOOLEAN:
+                return (sequence & 1) == 0;
+            case Tracer.KIND_INT:
+                return (int) sequence;
+            case Tracer.KIND_FLOAT:
+                return (float) sequence;
+            case Tracer.KIND_LONG:
+                return sequence;
+            case Tracer.KIND_STRING:
+                return text(size, sequence);
+            case Tracer.KIND_OBJECT:
+                // ["..."] adds 4 chars to the text
+                return Collections.singletonList(text(size - 4, sequence));
+            default:
+                return null;
+        }
+    }
+
+    private static String text(int size, long sequence) {
+        char[] chars = new char[Math.max(0, size)];
+        Arrays.fill(chars, 'x');
+        String stamp = Long.toHexString(sequence);
+        for (int i = 0; i < stamp.length() && i < chars.length; i++) {
+            chars[chars.length - 1 - i] = stamp.charAt(stamp.length() - 1 - i);
+        }
+        return new String(chars);
+    }
+
+    private void report(long[][] latencies, long elapsedNanos) {
+        long total = 0;
+        for (long[] threadLatencies : latencies) {
+            total += threadLatencies.length;
+        }
+        System.out.println(String.format(Locale.US, "Trace: %d records, %d vars read before being written, %d unchanged writes",
+                records.size(), seeds.size(), unchangedWrites));
+        System.out.println(String.format(Locale.US, "Replay: %d threads, %d ops in %.1f ms, %.0f ops/s",
+                latencies.length, total, elapsedNanos / 1e6, total / (elapsedNanos / 1e9)));
+        if (records.isEmpty()) {
+            return;
+        }
+        System.out.println(String.format(Locale.US, "%-12s %10s %10s %10s %10s %10s %10s",
+                "op (us)", "count", "p50", "p90", "p99", "p99.9", "max"));
+        for (int op = Tracer.OP_READ; op <= Tracer.OP_FORMAT; op++) {
+            long[] recorded = new long[records.size()];
+            int recordedCount = 0;
+            for (TraceReader.Record record : records) {
+                if (record.op == op) {
+                    recorded[recordedCount++] = record.durationNanos;
+                }
+            }
+            if (recordedCount == 0) {
+                continue;
+            }
+            long[] replayed = new long[(int) (total / records.size() * recordedCount)];
+            int n = 0;
+            for (long[] threadLatencies : latencies) {
+                for (int i = 0; i < threadLatencies.length; i++) {
+                    if (records.get(i % records.size()).op == op) {
+                        replayed[n++] = threadLatencies[i];
+                    }
+                }
+            }
+            printRow(OP_NAMES[op], replayed);
+            printRow("  recorded", Arrays.copyOf(recorded, recordedCount));
+        }
+    }
+
+    private static void printRow(String label, long[] latencies) {
+        Arrays.sort(latencies);
+        StringBuilder row = new StringBuilder(String.format(Locale.US, "%-12s %10d", label, latencies.length));
+        for (double percentile : PERCENTILES) {
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            row.append(String.format(Locale.US, " %10.2f", latencies[Math.max(0, index)] / 1e3));
+        }
+        row.append(String.format(Locale.US, " %10.2f", latencies[latencies.length - 1] / 1e3));
+        System.out.println(row);
+    }
+}
@@ -0,0 +1,361 @@
+package com.stetel.floppy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MigrationTest {
+    private static final String MIGRATION_PREFIX = "__FLOPPY_MIGRATION_";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MemorySharedPreferences sharedPreferences = new MemorySharedPreferences();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void readMigratesTheVar() {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        final AtomicInteger calls = new AtomicInteger();
+        floppy.addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                calls.incrementAndGet();
+                return floppy.readBoolean(name) ? "account" : "none";
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        assertEquals(1, sharedPreferences.getInt(MIGRATION_PREFIX + "setup", -1));
+
+        assertEquals("account", floppy.readString("setup"));
+        assertEquals("account", floppy.readString("setup"));
+        assertEquals(1, calls.get());
+        assertFalse(sharedPreferences.contains(MIGRATION_PREFIX + "setup"));
+        assertEquals(0, floppy.getSuppressedWrites());
+    }
+
+    @Test
+    public void userWriteIsNotMigrated() {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        floppy.addMigrator(2, "setup", failingMigrator(new AtomicInteger()));
+        floppy.prepareMigrations(1, 2);
+
+        floppy.write("setup", "none");
+        floppy.finishMigrations();
+        assertEquals("none", floppy.readString("setup"));
+        assertFalse(sharedPreferences.contains(MIGRATION_PREFIX + "setup"));
+    }
+
+    @Test
+    public void pendingMigrationsSurviveARestart() {
+        Floppy floppy = floppy();
+        floppy.write("a", 1, "b", 2, "c", 3);
+        final AtomicInteger calls = new AtomicInteger();
+        Migrator migrator = new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                calls.incrementAndGet();
+                return floppy.readInt(name) * 10;
+            }
+        };
+        floppy.addMigrator(2, "a", migrator);
+        floppy.addMigrator(2, "b", migrator);
+        floppy.prepareMigrations(1, 2);
+        assertEquals(10, floppy.readInt("a"));
+
+        Floppy restarted = floppy();
+        restarted.addMigrator(2, "a", migrator);
+        restarted.addMigrator(2, "b", migrator);
+        restarted.prepareMigrations(2, 2);
+        assertEquals(10, restarted.readInt("a"));
+        assertEquals(20, restarted.readInt("b"));
+        assertEquals(3, restarted.readInt("c"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void chainResumesFromTheReachedVersion() {
+        Floppy floppy = floppy();
+        floppy.write("count", 1);
+        final AtomicInteger firstCalls = new AtomicInteger();
+        final AtomicInteger secondCalls = new AtomicInteger();
+        Migrator first = new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                firstCalls.incrementAndGet();
+                return floppy.readInt(name) + 100;
+            }
+        };
+        Migrator second = new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                if (secondCalls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first attempt");
+                }
+                return floppy.readInt(name) * 10;
+            }
+        };
+        floppy.addMigrator(3, "count", second);
+        floppy.addMigrator(2, "count", first);
+        floppy.prepareMigrations(1, 3);
+
+        assertEquals(101, floppy.readInt("count"));
+        assertEquals(Collections.singletonList("count"), failures);
+        assertEquals(2, sharedPreferences.getInt(MIGRATION_PREFIX + "count", -1));
+
+        Floppy restarted = floppy();
+        restarted.addMigrator(2, "count", first);
+        restarted.addMigrator(3, "count", second);
+        restarted.prepareMigrations(3, 3);
+        assertEquals(1010, restarted.readInt("count"));
+        assertEquals(1, firstCalls.get());
+        assertEquals(2, secondCalls.get());
+    }
+
+    @Test
+    public void failedMigrationIsNotRetriedOnEveryRead() {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        AtomicInteger calls = new AtomicInteger();
+        floppy.addMigrator(2, "setup", failingMigrator(calls));
+        floppy.prepareMigrations(1, 2);
+
+        assertTrue(floppy.readBoolean("setup"));
+        assertTrue(floppy.readBoolean("setup"));
+        assertTrue(floppy.contains("setup"));
+        assertEquals(1, calls.get());
+        assertEquals(1, failures.size());
+        try {
+            floppy.finishMigrations();
+            fail("finishMigrations() must rethrow the failure");
+        } catch (IllegalStateException e) {
+            assertEquals(2, calls.get());
+        }
+        assertEquals(1, sharedPreferences.getInt(MIGRATION_PREFIX + "setup", -1));
+    }
+
+    @Test
+    public void backgroundThreadSavesInBatches() throws Exception {
+        Floppy floppy = floppy();
+        for (int i = 0; i < 40; i++) {
+            floppy.write("temperature" + i, (float) i);
+        }
+        floppy.addPrefixMigrator(2, "temperature", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                return floppy.readFloat(name) + 0.5f;
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        sharedPreferences.awaitWrites();
+        long fileWrites = sharedPreferences.getFileWrites();
+
+        floppy.startMigrations();
+        awaitNoPendingMigrations();
+        sharedPreferences.awaitWrites();
+        assertEquals(3, sharedPreferences.getFileWrites() - fileWrites);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 0.5f, sharedPreferences.getFloat("temperature" + i, 0), 0);
+        }
+    }
+
+    @Test
+    public void readDoesNotWaitForTheWholeBatch() throws Exception {
+        Floppy floppy = floppy();
+        for (int i = 0; i < 32; i++) {
+            floppy.write("slow" + i, i);
+        }
+        floppy.addPrefixMigrator(2, "slow", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                sleep(50);
+                return floppy.readInt(name) + 1000;
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        floppy.startMigrations();
+        sleep(120);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 32; i++) {
+            assertEquals(i + 1000, floppy.readInt("slow" + i));
+            if (i == 0) {
+                // at most the migration running on the background thread and its own
+                assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+            }
+        }
+        floppy.finishMigrations();
+    }
+
+    @Test
+    public void userWriteWinsOverMigrationInFlight() throws Exception {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        floppy.addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                started.countDown();
+                await(written);
+                return "account";
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        floppy.startMigrations();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        floppy.write("setup", "none");
+        written.countDown();
+        floppy.finishMigrations();
+        assertEquals("none", floppy.readString("setup"));
+        assertFalse(sharedPreferences.contains(MIGRATION_PREFIX + "setup"));
+    }
+
+    @Test
+    public void migratorsRunOutsideTheLock() throws Exception {
+        final Floppy floppy = floppy();
+        floppy.write("a", 1, "b", 2);
+        final Migrator plusOne = new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                return floppy.readInt(name) + 1;
+            }
+        };
+        floppy.addMigrator(2, "a", new Migrator() {
+            @Override
+            public Object onMigrate(final Floppy floppy, String name) {
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        floppy.addMigrator(2, "unused", plusOne);
+                        floppy.readInt("b");
+                        floppy.write("c", 3);
+                    }
+                });
+                other.start();
+                try {
+                    other.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (other.isAlive()) {
+                    throw new IllegalStateException("deadlock");
+                }
+                return floppy.readInt(name) + 1;
+            }
+        });
+        floppy.addMigrator(2, "b", plusOne);
+        floppy.prepareMigrations(1, 2);
+
+        assertEquals(2, floppy.readInt("a"));
+        assertEquals(3, floppy.readInt("b"));
+        assertEquals(3, floppy.readInt("c"));
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void migrationsAreNotTraced() throws Exception {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        floppy.addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                return floppy.readBoolean(name) ? "account" : "none";
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        File file = folder.newFile("trace.flpt");
+        Tracer tracer = new Tracer(file);
+        floppy.setTracer(tracer);
+        floppy.readString("setup");
+        floppy.setTracer(null);
+        tracer.close();
+
+        List<TraceReader.Record> records = TraceReader.read(file);
+        assertEquals(1, records.size());
+        assertEquals(Tracer.OP_READ, records.get(0).op);
+        assertEquals("setup", records.get(0).names[0]);
+    }
+
+    @Test
+    public void formatForgetsTheMigrations() {
+        Floppy floppy = floppy();
+        floppy.write("setup", true);
+        floppy.addMigrator(2, "setup", failingMigrator(new AtomicInteger()));
+        floppy.prepareMigrations(1, 2);
+
+        floppy.format();
+        assertNull(floppy.readString("setup"));
+        floppy.finishMigrations();
+        assertTrue(failures.isEmpty());
+    }
+
+    private Floppy floppy() {
+        return new Floppy(sharedPreferences) {
+            @Override
+            void reportMigrationFailure(String name, RuntimeException e) {
+                failures.add(name);
+            }
+        };
+    }
+
+    private static Migrator failingMigrator(final AtomicInteger calls) {
+        return new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                calls.incrementAndGet();
+                throw new IllegalStateException("cannot migrate " + name);
+            }
+        };
+    }
+
+    private void awaitNoPendingMigrations() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            boolean pending = false;
+            for (String name : sharedPreferences.getAll().keySet()) {
+                pending |= name.startsWith(MIGRATION_PREFIX);
+            }
+            if (!pending) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                fail("Migrations not finished");
+            }
+            sleep(10);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.stetel.floppy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuppressedWritesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MemorySharedPreferences sharedPreferences = new MemorySharedPreferences();
+
+    @Test
+    public void equalValuesAreNotWritten() throws Exception {
+        Floppy floppy = new Floppy(sharedPreferences);
+        floppy.write("count", 3, "greeting", "Hello", "rgb", Arrays.asList("red", "green"));
+        sharedPreferences.awaitWrites();
+        long fileWrites = sharedPreferences.getFileWrites();
+
+        floppy.write("count", 3);
+        floppy.write("greeting", "Hello");
+        floppy.write("rgb", Arrays.asList("red", "green"));
+        floppy.delete("missing");
+        sharedPreferences.awaitWrites();
+        assertEquals(4, floppy.getSuppressedWrites());
+        assertEquals(fileWrites, sharedPreferences.getFileWrites());
+
+        floppy.write("rgb", Arrays.asList("red", "blue"));
+        assertEquals(Arrays.asList("red", "blue"), floppy.readStringList("rgb"));
+        assertEquals(4, floppy.getSuppressedWrites());
+    }
+
+    @Test
+    public void onlyTheChangedVarsOfABatchAreWritten() {
+        Floppy floppy = new Floppy(sharedPreferences);
+        floppy.write("a", 1, "b", 2L);
+
+        floppy.write("a", 1, "b", 3L);
+        assertEquals(1, floppy.getSuppressedWrites());
+        assertEquals(3L, floppy.readLong("b"));
+        // same number, different type
+        floppy.write("a", 1L);
+        assertEquals(1, floppy.getSuppressedWrites());
+        assertEquals(1L, floppy.readLong("a"));
+    }
+
+    @Test
+    public void unchangedWriteForgetsThePendingMigration() {
+        Floppy floppy = new Floppy(sharedPreferences);
+        floppy.write("setup", "none");
+        floppy.addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                return "migrated";
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+
+        floppy.write("setup", "none");
+        assertEquals(1, floppy.getSuppressedWrites());
+        floppy.finishMigrations();
+        assertEquals("none", floppy.readString("setup"));
+    }
+
+    @Test
+    public void unchangedWriteWinsOverMigrationInFlight() throws Exception {
+        Floppy floppy = new Floppy(sharedPreferences);
+        floppy.write("setup", "none");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        floppy.addMigrator(2, "setup", new Migrator() {
+            @Override
+            public Object onMigrate(Floppy floppy, String name) {
+                started.countDown();
+                try {
+                    written.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "migrated";
+            }
+        });
+        floppy.prepareMigrations(1, 2);
+        floppy.startMigrations();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        floppy.write("setup", "none");
+        written.countDown();
+        floppy.finishMigrations();
+        assertEquals("none", floppy.readString("setup"));
+        assertEquals(1, floppy.getSuppressedWrites());
+    }
+
+    @Test
+    public void unchangedWritesAreTracedAndReplayed() throws Exception {
+        File file = folder.newFile("trace.flpt");
+        Floppy floppy = new Floppy(new MemorySharedPreferences());
+        Tracer tracer = new Tracer(file);
+        floppy.setTracer(tracer);
+        floppy.write("count", 3, "greeting", "Hello");
+        floppy.write("count", 3, "greeting", "Hello world!");
+        floppy.write("count", 3);
+        floppy.setTracer(null);
+        tracer.close();
+
+        List<TraceReader.Record> records = TraceReader.read(file);
+        assertEquals(3, records.size());
+        assertArrayEquals(new boolean[]{false, false}, records.get(0).unchanged);
+        for (int i = 0; i < records.get(1).names.length; i++) {
+            assertEquals(records.get(1).names[i].equals("count"), records.get(1).unchanged[i]);
+            assertTrue(records.get(1).kinds[i] == Tracer.KIND_INT || records.get(1).kinds[i] == Tracer.KIND_STRING);
+        }
+        assertArrayEquals(new boolean[]{true}, records.get(2).unchanged);
+
+        Floppy replayed = new Floppy(sharedPreferences);
+        TraceReplay replay = new TraceReplay(records);
+        replay.run(replayed, 1, 2);
+        assertEquals(0, replay.getErrors());
+        assertEquals(2 * 2, replayed.getSuppressedWrites());
+        assertFalse(sharedPreferences.getAll().isEmpty());
+    }
+}
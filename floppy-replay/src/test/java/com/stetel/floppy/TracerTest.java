@@ -0,0 +1,92 @@
+package com.stetel.floppy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TracerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void traceRoundTrip() throws Exception {
+        File file = folder.newFile("trace.flpt");
+        List<TraceReader.Record> records = record(file);
+
+        assertEquals(7, records.size());
+        assertRecord(records.get(0), Tracer.OP_WRITE);
+        Map<String, Integer> kinds = new HashMap<>();
+        for (int i = 0; i < records.get(0).names.length; i++) {
+            kinds.put(records.get(0).names[i], (int) records.get(0).kinds[i]);
+        }
+        assertEquals(Integer.valueOf(Tracer.KIND_INT), kinds.get("count"));
+        assertEquals(Integer.valueOf(Tracer.KIND_STRING), kinds.get("greeting"));
+        assertEquals(Integer.valueOf(Tracer.KIND_OBJECT), kinds.get("rgb"));
+
+        assertRecord(records.get(1), Tracer.OP_READ, "count");
+        assertArrayEquals(new int[]{Tracer.SIZE_INT}, records.get(1).sizes);
+        assertRecord(records.get(2), Tracer.OP_READ, "greeting");
+        assertArrayEquals(new int[]{"Hello world!".length()}, records.get(2).sizes);
+        assertRecord(records.get(3), Tracer.OP_READ, "missing");
+        assertArrayEquals(new int[]{-1}, records.get(3).sizes);
+        assertRecord(records.get(4), Tracer.OP_READ_OBJECT, "rgb");
+        assertArrayEquals(new byte[]{Tracer.KIND_OBJECT}, records.get(4).kinds);
+        assertArrayEquals(new int[]{"[\"red\",\"green\"]".length()}, records.get(4).sizes);
+        assertRecord(records.get(5), Tracer.OP_DELETE, "greeting");
+        assertArrayEquals(new byte[]{Tracer.KIND_NULL}, records.get(5).kinds);
+        assertRecord(records.get(6), Tracer.OP_FORMAT);
+    }
+
+    @Test
+    public void replayRunsThroughFloppy() throws Exception {
+        File file = folder.newFile("trace.flpt");
+        MemorySharedPreferences sharedPreferences = new MemorySharedPreferences();
+        TraceReplay replay = new TraceReplay(record(file));
+        long[][] latencies = replay.run(new Floppy(sharedPreferences), 2, 3);
+        sharedPreferences.awaitWrites();
+
+        assertEquals(0, replay.getErrors());
+        assertEquals(2, latencies.length);
+        assertEquals(7 * 3, latencies[0].length);
+        assertTrue(sharedPreferences.getFileWrites() > 0);
+    }
+
+    @Test
+    public void generatedValuesHaveTheRecordedSize() {
+        assertEquals(12, ((String) TraceReplay.value(Tracer.KIND_STRING, 12, 0xabc)).length());
+        assertEquals(16, new com.google.gson.Gson().toJson(TraceReplay.value(Tracer.KIND_OBJECT, 16, 7)).length());
+    }
+
+    private static List<TraceReader.Record> record(File file) throws Exception {
+        Floppy floppy = new Floppy(new MemorySharedPreferences());
+        Tracer tracer = new Tracer(file);
+        floppy.setTracer(tracer);
+        floppy.write("count", 3, "greeting", "Hello world!", "rgb", Arrays.asList("red", "green"));
+        floppy.readInt("count");
+        floppy.readString("greeting");
+        floppy.readString("missing");
+        floppy.readStringList("rgb");
+        floppy.delete("greeting");
+        floppy.format();
+        floppy.setTracer(null);
+        tracer.close();
+        return TraceReader.read(file);
+    }
+
+    private static void assertRecord(TraceReader.Record record, byte op, String... names) {
+        assertEquals(op, record.op);
+        if (names.length > 0) {
+            assertArrayEquals(names, record.names);
+        }
+    }
+}
@@ -2,17 +2,24 @@ package com.stetel.floppy;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.Serializable;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Floppy improves the standard SharedPreferences: faster to use, lots of helpful methods,
@@ -21,7 +28,11 @@ import java.util.Set;
  * To start using it retrieve an instance via the insert() method.
  */
 public class Floppy implements Serializable {
+    private static final String TAG = "Floppy";
+    private static final String __FLOPPY_ = "__FLOPPY_";
     private static final String __FLOPPY_DRIVE_VERSION_ = "__FLOPPY_DRIVE_VERSION_";
+    private static final String __FLOPPY_MIGRATION_ = "__FLOPPY_MIGRATION_";
+    private static final int MIGRATION_BATCH_SIZE = 16;
     private static final Gson gson = new Gson();
     private static final Type STRING_SET_TYPE = new TypeToken<Set<String>>(){}.getType();
     private static final Type INTEGER_SET_TYPE = new TypeToken<Set<Integer>>(){}.getType();
@@ -31,6 +42,17 @@ public class Floppy implements Serializable {
     private static final Type INTEGER_MAP_TYPE = new TypeToken<Map<String, Integer>>(){}.getType();
     private static volatile Floppy instance;
     private SharedPreferences sharedPreferences;
+    private volatile Tracer tracer;
+    private final List<Migration> migrations = new ArrayList<>();
+    private final Map<String, Integer> pendingMigrations = new HashMap<>();
+    private final Map<String, MigrationFlight> migrationsInFlight = new HashMap<>();
+    private final Map<String, Object> unsavedMigrations = new HashMap<>();
+    private final Map<String, Integer> failedMigrations = new HashMap<>();
+    private final ThreadLocal<MigrationFlight> migrating = new ThreadLocal<>();
+    private volatile boolean migrationsPending;
+    private boolean migrationThreadRunning;
+    private final AtomicLong suppressedWrites = new AtomicLong();
+    private int driveVersion;
 
     /**
      * Use this method to define the current version of your SharedPreference's variables (alias Floppy Drive)<br/>
@@ -42,21 +64,28 @@ public class Floppy implements Serializable {
      * So you change to version 2 where the old `setup = true` corresponds to `setup = "account"` and `setup = false` to `setup = "none"`.<br/>
      * <br/>
      * <b>Important:</b> this method will set the new version and call the Loader.onUpgrade() if the version is different from the previous one.
-     *  From the second time and on, the information of the previous version is lost because it was overwritten by the first invocation of the method.
+     *  From the second time and on, the information of the previous version is lost because it was overwritten by the first invocation of the method.<br/>
+     * <br/>
+     * The vars handled by the migrators registered via addMigrator() and addPrefixMigrator() are not
+     * touched here: they are migrated when they are read for the first time or by a background thread,
+     * started once the main thread is idle.
+     * Register the migrators before calling this method, every time the app starts.
      *
      * @param context Context
      * @param version Current version
-     * @param loader Interface which is called if and only if the previous version is different to the current one
+     * @param loader Interface which is called if and only if the previous version is different to the current one, can be null
      */
     public static void driveUpgrade(Context context, int version, Loader loader) {
         Floppy floppy = Floppy.insert(context);
-        int previousVersion = floppy.readInt(__FLOPPY_DRIVE_VERSION_, -1);
+        int previousVersion = floppy.sharedPreferences.getInt(__FLOPPY_DRIVE_VERSION_, -1);
+        floppy.prepareMigrations(previousVersion, version);
         if (previousVersion != version) {
-            floppy.write(__FLOPPY_DRIVE_VERSION_, version);
+            floppy.sharedPreferences.edit().putInt(__FLOPPY_DRIVE_VERSION_, version).apply();
         }
-        if (previousVersion >= 0) {
+        if (previousVersion >= 0 && loader != null) {
             loader.onUpgrade(floppy, previousVersion, version);
         }
+        floppy.scheduleMigrations();
     }
 
     /**
@@ -103,10 +132,86 @@ public class Floppy implements Serializable {
      * @param appContext App context
      */
     private Floppy(Context appContext) {
+        this(appContext.getSharedPreferences(appContext.getPackageName(), 0));
+    }
+
+    /**
+     * Constructor which uses the given SharedPreferences, e.g. an in-memory implementation when
+     * replaying a trace on a plain JVM.
+     *
+     * @param sharedPreferences SharedPreferences where the vars are saved
+     */
+    Floppy(SharedPreferences sharedPreferences) {
         if (instance != null) {
             throw new RuntimeException("Use insert() to get an instance of the Floppy class");
         }
-        this.sharedPreferences = appContext.getSharedPreferences(appContext.getPackageName(), 0);
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    /**
+     * Register a lazy migration for a single var.<br/>
+     * When the drive is upgraded from a version lower than the given one, the var is migrated the
+     * first time it is read, or by a background thread, instead of inside driveUpgrade().<br/>
+     * Multiple migrators of the same var run in version order.
+     *
+     * @param version version which introduced the new structure of the var
+     * @param name name of the var
+     * @param migrator Interface which converts the var
+     */
+    public synchronized void addMigrator(int version, String name, Migrator migrator) {
+        addMigration(new Migration(version, name, false, migrator));
+    }
+
+    /**
+     * Register a lazy migration for all the vars whose name starts with the given prefix.<br/>
+     * Check out addMigrator()
+     *
+     * @param version version which introduced the new structure of the vars
+     * @param prefix prefix of the names of the vars
+     * @param migrator Interface which converts each var
+     */
+    public synchronized void addPrefixMigrator(int version, String prefix, Migrator migrator) {
+        addMigration(new Migration(version, prefix, true, migrator));
+    }
+
+    /**
+     * Immediately migrate all the vars still waiting for a migration, retrying the ones whose
+     * migrator failed.<br/>
+     * Vars whose migrator throws an exception are left waiting and the first exception is rethrown
+     * at the end.
+     */
+    public void finishMigrations() {
+        synchronized (this) {
+            pendingMigrations.putAll(failedMigrations);
+            failedMigrations.clear();
+        }
+        RuntimeException failure = drainMigrations();
+        synchronized (this) {
+            while (hasForeignMigrationsInFlight()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (unsavedMigrations.size() > 0) {
+                saveMigrations(new ArrayList<>(unsavedMigrations.keySet()));
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Attach a tracer which records every read, write, delete and format operation.<br/>
+     * Pass null to stop recording; the previous tracer is not closed automatically.
+     *
+     * @param tracer Tracer to use or null to disable the tracing
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
     }
 
     /**
@@ -120,6 +225,7 @@ public class Floppy implements Serializable {
      */
     public boolean contains(String... names) {
         for (String name : names) {
+            migrateIfPending(name);
             if (!sharedPreferences.contains(name)) {
                 return false;
             }
@@ -145,8 +251,12 @@ public class Floppy implements Serializable {
      * @return Saved boolean value or defValue if not present
      */
     public boolean readBoolean(String name, boolean defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
-            return sharedPreferences.getBoolean(name, defValue);
+            boolean value = sharedPreferences.getBoolean(name, defValue);
+            traceRead(name, Tracer.KIND_BOOLEAN, Tracer.SIZE_BOOLEAN, startNanos);
+            return value;
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not 'boolean'");
         }
@@ -170,8 +280,12 @@ public class Floppy implements Serializable {
      * @return Saved integer value or defValue if not present
      */
     public int readInt(String name, int defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
-            return sharedPreferences.getInt(name, defValue);
+            int value = sharedPreferences.getInt(name, defValue);
+            traceRead(name, Tracer.KIND_INT, Tracer.SIZE_INT, startNanos);
+            return value;
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not 'int'");
         }
@@ -195,8 +309,12 @@ public class Floppy implements Serializable {
      * @return Saved float value or defValue if not present
      */
     public float readFloat(String name, float defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
-            return sharedPreferences.getFloat(name, defValue);
+            float value = sharedPreferences.getFloat(name, defValue);
+            traceRead(name, Tracer.KIND_FLOAT, Tracer.SIZE_FLOAT, startNanos);
+            return value;
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not 'float'");
         }
@@ -220,8 +338,12 @@ public class Floppy implements Serializable {
      * @return Saved long value or defValue if not present
      */
     public long readLong(String name, long defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
-            return sharedPreferences.getLong(name, defValue);
+            long value = sharedPreferences.getLong(name, defValue);
+            traceRead(name, Tracer.KIND_LONG, Tracer.SIZE_LONG, startNanos);
+            return value;
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not 'long'");
         }
@@ -245,8 +367,12 @@ public class Floppy implements Serializable {
      * @return Saved String value or defValue if not present
      */
     public String readString(String name, String defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
-            return sharedPreferences.getString(name, defValue);
+            String value = sharedPreferences.getString(name, defValue);
+            traceRead(name, Tracer.KIND_STRING, value == null ? 0 : value.length(), startNanos);
+            return value;
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not 'String'");
         }
@@ -321,8 +447,11 @@ public class Floppy implements Serializable {
      * @return Saved Enum value or defValue if not present
      */
     public <T extends Enum<T>> T readEnum(Class<T> enumType, String name, T defValue) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
         try {
             String enumString = sharedPreferences.getString(name, defValue.name());
+            traceRead(name, Tracer.KIND_STRING, enumString.length(), startNanos);
             return Enum.valueOf(enumType, enumString);
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not " + enumType.toString());
@@ -337,8 +466,11 @@ public class Floppy implements Serializable {
      * @return Saved custom object or null if not present
      */
     public <T> T read(Class<T> cls, String name) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
+        String objString = null;
         try {
-            String objString = sharedPreferences.getString(name, null);
+            objString = sharedPreferences.getString(name, null);
             if (objString == null) {
                 return null;
             }
@@ -352,6 +484,8 @@ public class Floppy implements Serializable {
             return gson.fromJson(objString, cls);
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not '" + cls.toString() + "'");
+        } finally {
+            traceReadObject(name, objString, startNanos);
         }
     }
 
@@ -367,8 +501,11 @@ public class Floppy implements Serializable {
      */
     @SuppressWarnings("unchecked")
     public <T> T read(Type type, String name) {
+        migrateIfPending(name);
+        long startNanos = traceStart();
+        String objString = null;
         try {
-            String objString = sharedPreferences.getString(name, null);
+            objString = sharedPreferences.getString(name, null);
             if (objString == null) {
                 return null;
             }
@@ -383,6 +520,8 @@ public class Floppy implements Serializable {
             return gson.fromJson(objString, type);
         } catch (ClassCastException e) {
             throw new RuntimeException("The type of the requested var is not '" + type.toString() + "'");
+        } finally {
+            traceReadObject(name, objString, startNanos);
         }
     }
 
@@ -394,6 +533,7 @@ public class Floppy implements Serializable {
      *   <li>Passing null as a value, will remove the var</li>
      *   <li>Boolean, Integer, Float and Long objects are converted to primitive for better efficiency.
      * Saving an Integer require to use readInt(...) and not read(Integer.class,...)</li>
+     *   <li>Vars whose value is equal to the saved one are not written again</li>
      * </ul></i>
      *
      * @param name name of the var
@@ -414,6 +554,7 @@ public class Floppy implements Serializable {
      *   <li>Passing null as a value, will remove the var</li>
      *   <li>Boolean, Integer, Float and Long objects are converted to primitive for better efficiency.
      * Saving an Integer require to use readInt(...) and not read(Integer.class,...)</li>
+     *   <li>Vars whose value is equal to the saved one are not written again</li>
      * </ul></i>
      *
      * @param namesValues array of names and values
@@ -440,38 +581,65 @@ public class Floppy implements Serializable {
      *   <li>Passing null as a value, will remove the var</li>
      *   <li>Boolean, Integer, Float and Long objects are converted to primitive for better efficiency.
      * Saving an Integer require to use readInt(...) and not read(Integer.class,...)</li>
+     *   <li>Vars whose value is equal to the saved one are not written again</li>
      * </ul></i>
      *
      * @param namesValues map of names and values
      */
     public void write(Map<String, Object> namesValues) {
         if (namesValues != null && namesValues.size() > 0) {
-            SharedPreferences.Editor editor = sharedPreferences.edit();
+            long startNanos = traceStart();
+            TraceBatch traceBatch = startNanos != 0 ? new TraceBatch(namesValues.size()) : null;
+            Map<String, Object> values = new HashMap<>();
             for (Map.Entry<String, Object> nameValuePair : namesValues.entrySet()) {
                 String name = nameValuePair.getKey();
                 Object value = nameValuePair.getValue();
-                if (value == null) {
-                    editor.remove(name);
-                } else if (value instanceof Boolean) {
-                    editor.putBoolean(name, (boolean) value);
-                } else if (value instanceof Integer) {
-                    editor.putInt(name, (int) value);
-                } else if (value instanceof Float) {
-                    editor.putFloat(name, (float) value);
-                } else if (value instanceof Long) {
-                    editor.putLong(name, (long) value);
-                } else if (value instanceof String) {
-                    editor.putString(name, (String) value);
-                } else if (value instanceof Enum) {
-                    editor.putString(name, ((Enum) value).name());
+                if (value == null || value instanceof Boolean || value instanceof Integer
+                        || value instanceof Float || value instanceof Long || value instanceof String) {
+                    if (traceBatch != null) {
+                        traceBatch.add(name, value);
+                    }
                 } else {
-                    editor.putString(name, gson.toJson(value));
+                    String objString = (String) serialize(value);
+                    if (traceBatch != null) {
+                        traceBatch.add(name, objString, value instanceof Enum ? Tracer.KIND_STRING : Tracer.KIND_OBJECT);
+                    }
+                    value = objString;
                 }
+                values.put(name, value);
+            }
+            Map<String, Object> changes;
+            if (migrationsPending) {
+                // compare holding the lock, so that no migrated value is saved before the write
+                synchronized (this) {
+                    changes = changes(values);
+                    // unchanged vars are forgotten too: the value written by the user must not be migrated
+                    forgetMigrations(values.keySet(), changes);
+                    if (changes.size() > 0) {
+                        apply(changes);
+                    }
+                }
+            } else {
+                changes = changes(values);
+                if (changes.size() > 0) {
+                    apply(changes);
+                }
+            }
+            if (traceBatch != null) {
+                traceBatch.record(tracer, startNanos, changes);
             }
-            editor.apply();
         }
     }
 
+    /**
+     * Get the number of writes skipped because the new value was equal to the saved one.
+     *
+     * @return Number of suppressed writes since the app started
+     */
+    public long getSuppressedWrites() {
+        return suppressedWrites.get();
+    }
+
     /**
      * Increment an integer value.
      *
@@ -519,8 +687,614 @@ public class Floppy implements Serializable {
      * Remove all the vars.
      */
     public void format() {
-        int version = readInt(__FLOPPY_DRIVE_VERSION_, -1);
-        sharedPreferences.edit().clear().apply();
-        write(__FLOPPY_DRIVE_VERSION_, version);
+        long startNanos = traceStart();
+        synchronized (this) {
+            int version = sharedPreferences.getInt(__FLOPPY_DRIVE_VERSION_, -1);
+            // clear() is always applied before the other changes of the same editor
+            sharedPreferences.edit().clear().putInt(__FLOPPY_DRIVE_VERSION_, version).apply();
+            pendingMigrations.clear();
+            unsavedMigrations.clear();
+            failedMigrations.clear();
+            for (MigrationFlight flight : migrationsInFlight.values()) {
+                flight.cancelled = true;
+            }
+            updateMigrationsPending();
+        }
+        Tracer tracer = this.tracer;
+        if (tracer != null && startNanos != 0) {
+            tracer.recordFormat(traceDuration(startNanos));
+        }
+    }
+
+    /**
+     * Save the changes with a single editor.
+     *
+     * @param changes names and values, already converted to primitives or Strings
+     */
+    private void apply(Map<String, Object> changes) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (Map.Entry<String, Object> nameValuePair : changes.entrySet()) {
+            String name = nameValuePair.getKey();
+            Object value = nameValuePair.getValue();
+            if (value == null) {
+                editor.remove(name);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(name, (boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(name, (int) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(name, (float) value);
+            } else if (value instanceof Long) {
+                editor.putLong(name, (long) value);
+            } else {
+                editor.putString(name, (String) value);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Convert a value to the type saved inside the SharedPreferences.
+     *
+     * @param value any value accepted by write()
+     * @return The value itself if it is null, a primitive or a String, otherwise its String form
+     */
+    private static Object serialize(Object value) {
+        if (value == null || value instanceof Boolean || value instanceof Integer
+                || value instanceof Float || value instanceof Long || value instanceof String) {
+            return value;
+        }
+        return value instanceof Enum ? ((Enum) value).name() : gson.toJson(value);
+    }
+
+    /**
+     * Keep only the vars whose value is different from the saved one, counting the others as
+     * suppressed writes.
+     *
+     * @param values names and values, already converted to primitives or Strings
+     * @return The vars to write
+     */
+    private Map<String, Object> changes(Map<String, Object> values) {
+        Map<String, Object> changes = new HashMap<>();
+        for (Map.Entry<String, Object> nameValuePair : values.entrySet()) {
+            if (isStored(nameValuePair.getKey(), nameValuePair.getValue())) {
+                suppressedWrites.incrementAndGet();
+            } else {
+                changes.put(nameValuePair.getKey(), nameValuePair.getValue());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Check if a var already contains the given value.
+     *
+     * @param name name of the var
+     * @param value primitive or String value, null to check if the var is missing
+     * @return true if writing the value would not change the var
+     */
+    private boolean isStored(String name, Object value) {
+        if (value == null) {
+            return !sharedPreferences.contains(name);
+        }
+        if (!sharedPreferences.contains(name)) {
+            return false;
+        }
+        try {
+            if (value instanceof Boolean) {
+                return sharedPreferences.getBoolean(name, false) == (boolean) value;
+            } else if (value instanceof Integer) {
+                return sharedPreferences.getInt(name, 0) == (int) value;
+            } else if (value instanceof Float) {
+                return Float.compare(sharedPreferences.getFloat(name, 0), (float) value) == 0;
+            } else if (value instanceof Long) {
+                return sharedPreferences.getLong(name, 0) == (long) value;
+            } else {
+                return value.equals(sharedPreferences.getString(name, null));
+            }
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Insert a migration keeping the list sorted by version.
+     *
+     * @param migration migration to add
+     */
+    private void addMigration(Migration migration) {
+        int index = migrations.size();
+        while (index > 0 && migrations.get(index - 1).version > migration.version) {
+            index--;
+        }
+        migrations.add(index, migration);
+    }
+
+    /**
+     * Restore the vars waiting for a migration from the previous sessions and, in case of upgrade,
+     * add the vars handled by the registered migrators.<br/>
+     * Every var waiting for a migration has its own int var with the version of the drive which
+     * wrote it, so that it can be removed without rewriting the others.
+     *
+     * @param previousVersion previous version of the drive or -1 at the first start
+     * @param version current version of the drive
+     */
+    synchronized void prepareMigrations(int previousVersion, int version) {
+        driveVersion = version;
+        pendingMigrations.clear();
+        failedMigrations.clear();
+        if (!migrations.isEmpty()) {
+            Map<String, ?> vars = sharedPreferences.getAll();
+            for (Map.Entry<String, ?> var : vars.entrySet()) {
+                String name = var.getKey();
+                if (name.startsWith(__FLOPPY_MIGRATION_) && var.getValue() instanceof Integer) {
+                    name = name.substring(__FLOPPY_MIGRATION_.length());
+                    if (!migrationsInFlight.containsKey(name) && !unsavedMigrations.containsKey(name)) {
+                        pendingMigrations.put(name, (Integer) var.getValue());
+                    }
+                }
+            }
+            if (previousVersion >= 0 && previousVersion < version) {
+                Map<String, Object> changes = new HashMap<>();
+                for (String name : vars.keySet()) {
+                    if (!name.startsWith(__FLOPPY_) && !pendingMigrations.containsKey(name)
+                            && !findMigrations(name, previousVersion).isEmpty()) {
+                        pendingMigrations.put(name, previousVersion);
+                        changes.put(__FLOPPY_MIGRATION_ + name, previousVersion);
+                    }
+                }
+                if (changes.size() > 0) {
+                    apply(changes);
+                }
+            }
+        }
+        updateMigrationsPending();
+    }
+
+    /**
+     * Start the migration of the vars left the first time the main thread is idle, so that it does
+     * not compete with the start of the app.
+     */
+    private void scheduleMigrations() {
+        synchronized (this) {
+            if (pendingMigrations.isEmpty()) {
+                return;
+            }
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        startMigrations();
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Migrate the vars left on a low priority background thread.
+     */
+    void startMigrations() {
+        synchronized (this) {
+            if (pendingMigrations.isEmpty() || migrationThreadRunning) {
+                return;
+            }
+            migrationThreadRunning = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainMigrations();
+                } finally {
+                    synchronized (Floppy.this) {
+                        migrationThreadRunning = false;
+                    }
+                }
+            }
+        }, "floppy-migrations");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the migrations to apply to a var, in version order.
+     *
+     * @param name name of the var
+     * @param storedVersion version of the drive when the var was written
+     * @return migrations with a version greater than storedVersion matching the var
+     */
+    private List<Migration> findMigrations(String name, int storedVersion) {
+        List<Migration> found = new ArrayList<>();
+        for (Migration migration : migrations) {
+            if (migration.version > storedVersion && migration.version <= driveVersion && migration.matches(name)) {
+                found.add(migration);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Migrate the var if it was written by an older version of the drive.<br/>
+     * If the var is being migrated by another thread, wait for it.
+     *
+     * @param name name of the var
+     */
+    private void migrateIfPending(String name) {
+        if (migrationsPending) {
+            migrate(name, true);
+        }
+    }
+
+    /**
+     * Migrate all the vars waiting for a migration one at a time, saving them in batches.<br/>
+     * The vars being migrated by other threads are skipped and the failed ones are not retried.
+     *
+     * @return The first exception thrown by a migrator or null
+     */
+    private RuntimeException drainMigrations() {
+        RuntimeException failure = null;
+        while (true) {
+            String name;
+            synchronized (this) {
+                if (unsavedMigrations.size() >= MIGRATION_BATCH_SIZE
+                        || (pendingMigrations.isEmpty() && unsavedMigrations.size() > 0)) {
+                    saveMigrations(new ArrayList<>(unsavedMigrations.keySet()));
+                }
+                if (pendingMigrations.isEmpty()) {
+                    return failure;
+                }
+                name = pendingMigrations.keySet().iterator().next();
+            }
+            RuntimeException nameFailure = migrate(name, false);
+            if (failure == null) {
+                failure = nameFailure;
+            }
+        }
+    }
+
+    /**
+     * Run the migrators of a var outside the lock.<br/>
+     * While the migrators run the var is in flight: the migrators can read it and other threads
+     * reading it wait for the result. If a migrator throws, the failure is reported and the var
+     * keeps its old value until the next start of the app or finishMigrations().
+     *
+     * @param name name of the var
+     * @param read true if the var is being read: wait for the migration made by another thread and
+     *             save the new value immediately, false to keep the value for the next batch
+     * @return The exception thrown by the migrator or null
+     */
+    private RuntimeException migrate(String name, boolean read) {
+        MigrationFlight flight;
+        synchronized (this) {
+            flight = claimMigration(name, read);
+            if (flight == null) {
+                return null;
+            }
+        }
+        RuntimeException failure = null;
+        try {
+            runMigrators(flight);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            migrationsInFlight.remove(name);
+            if (!flight.cancelled) {
+                if (failure != null) {
+                    failedMigrations.put(name, flight.storedVersion);
+                } else {
+                    unsavedMigrations.put(name, flight.value);
+                    if (read) {
+                        saveMigrations(Collections.singletonList(name));
+                    }
+                }
+            }
+            updateMigrationsPending();
+            notifyAll();
+        }
+        if (failure != null) {
+            reportMigrationFailure(name, failure);
+        }
+        return failure;
+    }
+
+    /**
+     * Move a var from the pending migrations to the ones in flight.<br/>
+     * A var already migrated by the background thread but not saved yet is saved immediately when
+     * it is read.<br/>
+     * Must be called holding the lock.
+     *
+     * @param name name of the var
+     * @param read true if the var is being read
+     * @return The claimed migration or null if there is nothing to migrate
+     */
+    private MigrationFlight claimMigration(String name, boolean read) {
+        while (migrationsInFlight.containsKey(name)) {
+            // a thread running migrators never waits, to avoid deadlocks between migrators
+            if (!read || migrating.get() != null) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        if (read && unsavedMigrations.containsKey(name)) {
+            saveMigrations(Collections.singletonList(name));
+            return null;
+        }
+        Integer storedVersion = pendingMigrations.remove(name);
+        if (storedVersion == null) {
+            return null;
+        }
+        MigrationFlight flight = new MigrationFlight(name, storedVersion, Thread.currentThread(),
+                findMigrations(name, storedVersion));
+        migrationsInFlight.put(name, flight);
+        return flight;
+    }
+
+    /**
+     * Run the migrators of a var, outside the lock.<br/>
+     * The values of the intermediate versions are written so that the next migrator can read them,
+     * together with the version reached, so that a failure of a later migrator does not run the
+     * previous ones again.
+     *
+     * @param flight migration to run
+     */
+    private void runMigrators(MigrationFlight flight) {
+        MigrationFlight outer = migrating.get();
+        migrating.set(flight);
+        try {
+            for (int i = 0; i < flight.migrations.size(); i++) {
+                Migration migration = flight.migrations.get(i);
+                Object value = serialize(migration.migrator.onMigrate(this, flight.name));
+                if (i < flight.migrations.size() - 1) {
+                    synchronized (this) {
+                        if (flight.cancelled) {
+                            return;
+                        }
+                        flight.storedVersion = migration.version;
+                        Map<String, Object> changes = new HashMap<>();
+                        changes.put(flight.name, value);
+                        changes.put(__FLOPPY_MIGRATION_ + flight.name, migration.version);
+                        apply(changes);
+                    }
+                } else {
+                    flight.value = value;
+                }
+            }
+        } finally {
+            if (outer != null) {
+                migrating.set(outer);
+            } else {
+                migrating.remove();
+            }
+        }
+    }
+
+    /**
+     * Write back the values of the migrated vars with a single editor, removing them from the vars
+     * waiting for a migration.<br/>
+     * Must be called holding the lock.
+     *
+     * @param names names of the vars inside unsavedMigrations
+     */
+    private void saveMigrations(Collection<String> names) {
+        Map<String, Object> changes = new HashMap<>();
+        for (String name : names) {
+            changes.put(name, unsavedMigrations.remove(name));
+            changes.put(__FLOPPY_MIGRATION_ + name, null);
+        }
+        apply(changes);
+        updateMigrationsPending();
+    }
+
+    /**
+     * Remove the written vars from the ones waiting for a migration, their values already have the
+     * current structure. The migrations in flight on other threads are cancelled.<br/>
+     * Must be called holding the lock.
+     *
+     * @param names names of the written vars
+     * @param changes changes of the write, where the removals of the saved migrations are added
+     */
+    private void forgetMigrations(Collection<String> names, Map<String, Object> changes) {
+        for (String name : names) {
+            boolean forgotten = pendingMigrations.remove(name) != null;
+            forgotten |= failedMigrations.remove(name) != null;
+            if (unsavedMigrations.containsKey(name)) {
+                unsavedMigrations.remove(name);
+                forgotten = true;
+            }
+            MigrationFlight flight = migrationsInFlight.get(name);
+            if (flight != null && flight.thread != Thread.currentThread() && !flight.cancelled) {
+                flight.cancelled = true;
+                forgotten = true;
+            }
+            if (forgotten) {
+                changes.put(__FLOPPY_MIGRATION_ + name, null);
+            }
+        }
+        updateMigrationsPending();
+    }
+
+    /**
+     * Report the failure of a migrator.
+     *
+     * @param name name of the var
+     * @param e exception thrown by the migrator
+     */
+    void reportMigrationFailure(String name, RuntimeException e) {
+        Log.e(TAG, "Migration of '" + name + "' failed, it will be retried at the next start", e);
+    }
+
+    private void updateMigrationsPending() {
+        migrationsPending = !pendingMigrations.isEmpty() || !migrationsInFlight.isEmpty()
+                || !unsavedMigrations.isEmpty() || !failedMigrations.isEmpty();
+    }
+
+    private boolean hasForeignMigrationsInFlight() {
+        for (MigrationFlight flight : migrationsInFlight.values()) {
+            if (flight.thread != Thread.currentThread()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the start time of an operation, only if a tracer is attached.<br/>
+     * The operations made by the migrators are not recorded, they are part of the read which
+     * triggered the migration.
+     *
+     * @return System.nanoTime() or 0 if the operation must not be recorded
+     */
+    private long traceStart() {
+        return tracer != null && migrating.get() == null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Measure the duration of an operation, before waiting for the lock of the tracer.
+     *
+     * @param startNanos start time taken via traceStart()
+     * @return Elapsed nanoseconds or 0 if the start time is unknown
+     */
+    private static long traceDuration(long startNanos) {
+        return startNanos != 0 ? System.nanoTime() - startNanos : 0;
+    }
+
+    /**
+     * Record a read of a primitive or String var if a tracer is attached.
+     *
+     * @param name name of the var
+     * @param kind kind of the value requested
+     * @param size size of the value if the var is present
+     * @param startNanos start time taken via traceStart()
+     */
+    private void traceRead(String name, byte kind, int size, long startNanos) {
+        Tracer tracer = this.tracer;
+        if (tracer != null && startNanos != 0) {
+            long durationNanos = traceDuration(startNanos);
+            tracer.recordRead(Tracer.OP_READ, name, kind, sharedPreferences.contains(name) ? size : -1, durationNanos);
+        }
+    }
+
+    /**
+     * Record a read of a custom object if a tracer is attached.
+     *
+     * @param name name of the var
+     * @param objString serialized value or null if the var is not present
+     * @param startNanos start time taken via traceStart()
+     */
+    private void traceReadObject(String name, String objString, long startNanos) {
+        Tracer tracer = this.tracer;
+        if (tracer != null && startNanos != 0) {
+            tracer.recordRead(Tracer.OP_READ_OBJECT, name, Tracer.KIND_OBJECT,
+                    objString == null ? -1 : objString.length(), traceDuration(startNanos));
+        }
+    }
+
+    /**
+     * Migrator registered for a var or for a prefix of names.
+     */
+    private static class Migration {
+        private final int version;
+        private final String name;
+        private final boolean prefix;
+        private final Migrator migrator;
+
+        Migration(int version, String name, boolean prefix, Migrator migrator) {
+            this.version = version;
+            this.name = name;
+            this.prefix = prefix;
+            this.migrator = migrator;
+        }
+
+        boolean matches(String var) {
+            return prefix ? var.startsWith(name) : var.equals(name);
+        }
+    }
+
+    /**
+     * Migration of a var claimed by a thread.
+     */
+    private static class MigrationFlight {
+        private final String name;
+        private int storedVersion;
+        private final Thread thread;
+        private final List<Migration> migrations;
+        private Object value;
+        private boolean cancelled;
+
+        MigrationFlight(String name, int storedVersion, Thread thread, List<Migration> migrations) {
+            this.name = name;
+            this.storedVersion = storedVersion;
+            this.thread = thread;
+            this.migrations = migrations;
+        }
+    }
+
+    /**
+     * Entries of a write() call, recorded as a single operation.
+     */
+    private static class TraceBatch {
+        private final String[] names;
+        private final byte[] kinds;
+        private final int[] sizes;
+        private int count;
+        private boolean removalsOnly = true;
+
+        TraceBatch(int capacity) {
+            this.names = new String[capacity];
+            this.kinds = new byte[capacity];
+            this.sizes = new int[capacity];
+        }
+
+        void add(String name, Object value) {
+            if (value == null) {
+                add(name, null, Tracer.KIND_NULL);
+            } else if (value instanceof Boolean) {
+                put(name, Tracer.KIND_BOOLEAN, Tracer.SIZE_BOOLEAN);
+            } else if (value instanceof Integer) {
+                put(name, Tracer.KIND_INT, Tracer.SIZE_INT);
+            } else if (value instanceof Float) {
+                put(name, Tracer.KIND_FLOAT, Tracer.SIZE_FLOAT);
+            } else if (value instanceof Long) {
+                put(name, Tracer.KIND_LONG, Tracer.SIZE_LONG);
+            } else {
+                add(name, (String) value, Tracer.KIND_STRING);
+            }
+        }
+
+        void add(String name, String value, byte kind) {
+            put(name, kind, value == null ? -1 : value.length());
+        }
+
+        private void put(String name, byte kind, int size) {
+            names[count] = name;
+            kinds[count] = kind;
+            sizes[count] = size;
+            removalsOnly &= kind == Tracer.KIND_NULL;
+            count++;
+        }
+
+        void record(Tracer tracer, long startNanos, Map<String, Object> changes) {
+            for (int i = 0; i < count; i++) {
+                if (!changes.containsKey(names[i])) {
+                    kinds[i] |= Tracer.UNCHANGED;
+                }
+            }
+            if (tracer != null) {
+                long durationNanos = traceDuration(startNanos);
+                tracer.recordWrite(removalsOnly ? Tracer.OP_DELETE : Tracer.OP_WRITE, names, kinds, sizes, durationNanos);
+            }
+        }
     }
 }
@@ -0,0 +1,25 @@
+package com.stetel.floppy;
+
+/**
+ * Callback which converts a single var to the structure introduced by a new version.<br/>
+ * Used with Floppy.addMigrator() and Floppy.addPrefixMigrator()
+ */
+public interface Migrator {
+    /**
+     * Called once per var, the first time the var is read after an upgrade or on a background thread
+     * once the app is idle.<br/>
+     * Read the old value via floppy with the old type and return the new one: Floppy writes it back
+     * for you. Reading the var inside this method does not trigger the migration again.<br/>
+     * <br/>
+     * <i>Note: the method can be called on any thread. Read only the var being migrated: other vars
+     * migrated at the same time by another thread are not waited for and may still have the old structure.
+     * If the method throws an exception, the failure is logged and the var keeps its old value: the read
+     * which triggered the migration does not throw and the migration is retried at the next start of the
+     * app or by Floppy.finishMigrations().</i>
+     *
+     * @param floppy Instance of floppy
+     * @param name name of the var to migrate
+     * @return New value of the var, any value accepted by Floppy.write() (null removes the var)
+     */
+    Object onMigrate(Floppy floppy, String name);
+}
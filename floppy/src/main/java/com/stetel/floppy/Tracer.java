@@ -0,0 +1,177 @@
+package com.stetel.floppy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the sequence of operations made on Floppy inside a compact trace file.<br/>
+ * Only the names of the vars, the kind and the size of the values are saved, the values themselves
+ * are never written to the file.<br/>
+ * <br/>
+ * Attach it via Floppy.setTracer() and detach it passing null when you are done, then use
+ * the floppy-replay module to run the recorded trace on a plain JVM.<br/>
+ * <br/>
+ * <i>Note: if an error occurs while writing the file, the tracer closes itself and stops recording.</i>
+ */
+public class Tracer implements Closeable {
+    static final int MAGIC = 0x464C5054; // "FLPT"
+    static final int FORMAT_VERSION = 2;
+
+    static final byte OP_READ = 1;
+    static final byte OP_READ_OBJECT = 2;
+    static final byte OP_WRITE = 3;
+    static final byte OP_DELETE = 4;
+    static final byte OP_FORMAT = 5;
+
+    static final byte KIND_NULL = 0;
+    static final byte KIND_BOOLEAN = 1;
+    static final byte KIND_INT = 2;
+    static final byte KIND_FLOAT = 3;
+    static final byte KIND_LONG = 4;
+    static final byte KIND_STRING = 5;
+    static final byte KIND_OBJECT = 6;
+    // added to the kind of the written vars whose value was equal to the saved one
+    static final byte UNCHANGED = 0x40;
+
+    static final int SIZE_BOOLEAN = 1;
+    static final int SIZE_INT = 4;
+    static final int SIZE_FLOAT = 4;
+    static final int SIZE_LONG = 8;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> names = new HashMap<>();
+    private long lastNanos;
+    private boolean closed;
+
+    /**
+     * Create a tracer which writes the trace inside the given file.<br/>
+     * An existing file is overwritten.
+     *
+     * @param file destination of the trace
+     * @throws IOException if the file cannot be opened
+     */
+    public Tracer(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Record the read of a var.<br/>
+     * The record contains the op code, the time elapsed since the previous record, the duration
+     * of the operation and one entry made of the name of the var (the first time as text, then as
+     * an index), the kind of the value and its size.
+     *
+     * @param op OP_READ or OP_READ_OBJECT
+     * @param name name of the var
+     * @param kind kind of the value requested by the read method
+     * @param size size of the value or -1 if the var is not present
+     * @param durationNanos duration of the operation, measured by the caller, or 0 if unknown
+     */
+    synchronized void recordRead(byte op, String name, byte kind, int size, long durationNanos) {
+        if (closed) {
+            return;
+        }
+        try {
+            writeHeader(op, durationNanos);
+            writeEntry(name, kind, size);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Record a batch of vars written with a single editor.<br/>
+     * The record contains the number of entries followed by an entry for each var: removed vars
+     * have KIND_NULL and size -1, vars not written because equal to the saved value have the
+     * UNCHANGED flag added to the kind.
+     *
+     * @param op OP_WRITE or OP_DELETE if all the vars are removed
+     * @param names names of the vars
+     * @param kinds kinds of the values
+     * @param sizes sizes of the values
+     * @param durationNanos duration of the operation, measured by the caller, or 0 if unknown
+     */
+    synchronized void recordWrite(byte op, String[] names, byte[] kinds, int[] sizes, long durationNanos) {
+        if (closed) {
+            return;
+        }
+        try {
+            writeHeader(op, durationNanos);
+            writeVarLong(names.length);
+            for (int i = 0; i < names.length; i++) {
+                writeEntry(names[i], kinds[i], sizes[i]);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Record the removal of all the vars.
+     *
+     * @param durationNanos duration of the operation, measured by the caller, or 0 if unknown
+     */
+    synchronized void recordFormat(long durationNanos) {
+        if (closed) {
+            return;
+        }
+        try {
+            writeHeader(OP_FORMAT, durationNanos);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Flush and close the trace file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing else to do, the trace is truncated
+        }
+    }
+
+    private void writeHeader(byte op, long durationNanos) throws IOException {
+        long now = System.nanoTime();
+        out.writeByte(op);
+        writeVarLong(now - lastNanos);
+        writeVarLong(Math.max(0, durationNanos));
+        lastNanos = now;
+    }
+
+    private void writeEntry(String name, byte kind, int size) throws IOException {
+        Integer index = names.get(name);
+        if (index == null) {
+            writeVarLong(names.size());
+            out.writeUTF(name);
+            names.put(name, names.size());
+        } else {
+            writeVarLong(index);
+        }
+        out.writeByte(kind);
+        writeVarLong(size + 1L);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}